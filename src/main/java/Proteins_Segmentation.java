@@ -104,6 +104,9 @@ public class Proteins_Segmentation implements PlugIn {
             results.write("\n");
             results.flush();
             
+            // Bound memory kept idle in the buffer pool
+            tools.pool.setMaxBytes(tools.poolHostMB*1024L*1024, tools.poolDeviceMB*1024L*1024);
+            
             for (String f: imageFiles) {
                 String rootName = FilenameUtils.getBaseName(f);
                 tools.print("--- ANALYZING IMAGE " + rootName + " ------");
@@ -151,10 +154,10 @@ public class Proteins_Segmentation implements PlugIn {
                 // Save results for each ROI
                 tools.print("- Saving results -");
                 double imgVol = imgProtA.getWidth() * imgProtA.getHeight() * imgProtA.getNSlices() * tools.pixVol;
-                ImageHandler resProtA = ImageHandler.wrap(imgProtA).createSameDimensions();
+                ImageHandler resProtA = ImageHandler.wrap(tools.pool.createSameDimensions(imgProtA));
                 ImageHandler resProtB = null;
                 if(imgProtB != null)
-                    resProtB = ImageHandler.wrap(imgProtB).createSameDimensions();
+                    resProtB = ImageHandler.wrap(tools.pool.createSameDimensions(imgProtB));
                 for(Roi roi: rois) {
                     double roiVol = tools.getRoiVolume(roi, imgProtA);
                     
@@ -187,17 +190,20 @@ public class Proteins_Segmentation implements PlugIn {
                 tools.drawResults(resProtA, resProtB, imgProtA, imgProtB, outDirResults+rootName+".tif");
                 
                 tools.closeImage(imgProtA);
-                tools.closeImage(segProtA);
-                resProtA.closeImagePlus();
+                tools.recycleImage(segProtA);
+                tools.recycleImage(resProtA.getImagePlus());
                 if(imgProtB != null) {
                     tools.closeImage(imgProtB);
-                    tools.closeImage(segProtB);
-                    resProtB.closeImagePlus();
+                    tools.recycleImage(segProtB);
+                    tools.recycleImage(resProtB.getImagePlus());
                 }
             }
             results.close();
+            tools.print(tools.pool.report());
         } catch (IOException | DependencyException | ServiceException | FormatException ex) {
             Logger.getLogger(Proteins_Segmentation.class.getName()).log(Level.SEVERE, null, ex);
+        } finally {
+            tools.pool.clear();
         }
         tools.print("All done!");
     }
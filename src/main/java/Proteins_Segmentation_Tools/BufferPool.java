@@ -0,0 +1,382 @@
+package Proteins_Segmentation_Tools;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
+import net.haesleinhuepf.clij.coremem.enums.NativeTypeEnum;
+import net.haesleinhuepf.clij2.CLIJ2;
+
+
+/**
+ * Pool of primitive plane arrays and CLIJ2 buffers reused across images of the same shape
+ * Idle planes are keyed by bit depth and plane dimensions, idle buffers by dimensions and type
+ * Only planes and buffers handed out by the pool are taken back, so idle memory never exceeds what was in use
+ * Total idle memory is bounded separately on the host and on the GPU
+ * @author Héloïse Monnet
+ */
+public class BufferPool {
+
+    private final CLIJ2 clij2;
+
+    private long maxHostBytes;
+    private long maxDeviceBytes;
+    private long hostBytes = 0;
+    private long deviceBytes = 0;
+
+    private final Map<String, ArrayDeque<Object>> planes = new HashMap<>();
+    private final Map<String, ArrayDeque<ClearCLBuffer>> buffers = new HashMap<>();
+    // Planes handed out and not given back yet, weakly held so dropped images stay collectable
+    // (arrays use identity equality, so a WeakHashMap is an identity set here)
+    private final Set<Object> outstandingPlanes = Collections.newSetFromMap(new WeakHashMap<>());
+    // Buffers handed out and not given back yet, callers must release them on every path
+    private final Set<ClearCLBuffer> outstandingBuffers = Collections.newSetFromMap(new IdentityHashMap<>());
+    // Planes and buffers waiting in the pool, to guard against releasing them twice
+    private final Set<Object> idle = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    private long planeHits = 0, planeMisses = 0;
+    private long bufferHits = 0, bufferMisses = 0;
+
+
+    public BufferPool(CLIJ2 clij2, long maxHostBytes, long maxDeviceBytes) {
+        this.clij2 = clij2;
+        this.maxHostBytes = Math.max(0, maxHostBytes);
+        this.maxDeviceBytes = Math.max(0, maxDeviceBytes);
+    }
+
+
+    /**
+     * Set maximum memory kept idle in the pool, in bytes
+     * Negative values are clamped to 0, which disables reuse on that side
+     */
+    public synchronized void setMaxBytes(long maxHostBytes, long maxDeviceBytes) {
+        this.maxHostBytes = Math.max(0, maxHostBytes);
+        this.maxDeviceBytes = Math.max(0, maxDeviceBytes);
+        trim();
+    }
+
+
+    /**
+     * Get a plane array of the given dimensions and bit depth
+     * Content is undefined unless clear is set
+     * Plane is weakly tracked until given back with releasePlane or recycle
+     */
+    public synchronized Object acquirePlane(int width, int height, int bitDepth, boolean clear) {
+        ArrayDeque<Object> queue = planes.get(planeKey(bitDepth, width, height));
+        if (queue != null && !queue.isEmpty()) {
+            Object pixels = queue.pop();
+            idle.remove(pixels);
+            hostBytes -= planeBytes(pixels);
+            planeHits++;
+            if (clear)
+                clearPlane(pixels);
+            outstandingPlanes.add(pixels);
+            return(pixels);
+        }
+        planeMisses++;
+        Object pixels;
+        int size = width * height;
+        switch (bitDepth) {
+            case 8 :
+                pixels = new byte[size];
+                break;
+            case 16 :
+                pixels = new short[size];
+                break;
+            case 24 :
+                pixels = new int[size];
+                break;
+            case 32 :
+                pixels = new float[size];
+                break;
+            default :
+                throw new IllegalArgumentException("Unsupported bit depth: " + bitDepth);
+        }
+        outstandingPlanes.add(pixels);
+        return(pixels);
+    }
+
+
+    /**
+     * Give a plane array back to the pool
+     * Array is dropped if it was not handed out by the pool or if the pool is full
+     */
+    public synchronized void releasePlane(Object pixels, int width, int height) {
+        if (pixels == null || !outstandingPlanes.remove(pixels))
+            return;
+        long bytes = planeBytes(pixels);
+        if (hostBytes + bytes > maxHostBytes)
+            return;
+        planes.computeIfAbsent(planeKey(planeBitDepth(pixels), width, height), k -> new ArrayDeque<>()).push(pixels);
+        idle.add(pixels);
+        hostBytes += bytes;
+    }
+
+
+    /**
+     * Get a CLIJ2 buffer of the given dimensions and type
+     * Content is undefined
+     * Buffer is tracked until given back with releaseBuffer
+     */
+    public synchronized ClearCLBuffer acquireBuffer(long[] dimensions, NativeTypeEnum type) {
+        ArrayDeque<ClearCLBuffer> queue = buffers.get(bufferKey(dimensions, type));
+        if (queue != null && !queue.isEmpty()) {
+            ClearCLBuffer buffer = queue.pop();
+            idle.remove(buffer);
+            deviceBytes -= buffer.getSizeInBytes();
+            bufferHits++;
+            outstandingBuffers.add(buffer);
+            return(buffer);
+        }
+        bufferMisses++;
+        ClearCLBuffer buffer = clij2.create(dimensions, type);
+        outstandingBuffers.add(buffer);
+        return(buffer);
+    }
+
+
+    /**
+     * Give a CLIJ2 buffer back to the pool
+     * Buffer is released on the GPU if it was not handed out by the pool or if the pool is full
+     */
+    public synchronized void releaseBuffer(ClearCLBuffer buffer) {
+        if (buffer == null || idle.contains(buffer))
+            return;
+        long bytes = buffer.getSizeInBytes();
+        if (!outstandingBuffers.remove(buffer) || deviceBytes + bytes > maxDeviceBytes) {
+            clij2.release(buffer);
+            return;
+        }
+        buffers.computeIfAbsent(bufferKey(buffer.getDimensions(), buffer.getNativeType()), k -> new ArrayDeque<>()).push(buffer);
+        idle.add(buffer);
+        deviceBytes += bytes;
+    }
+
+
+    /**
+     * Duplicate an image into pooled plane arrays
+     * Pixels, calibration, LUT (including inversion), display range and info are copied,
+     * other image properties and overlay are not
+     */
+    public ImagePlus duplicate(ImagePlus img) {
+        ImagePlus imgOut = allocate(img, false);
+        ImageStack stack = img.getStack();
+        ImageStack stackOut = imgOut.getStack();
+        int size = img.getWidth() * img.getHeight();
+        for (int s = 1; s <= stack.getSize(); s++)
+            System.arraycopy(stack.getPixels(s), 0, stackOut.getPixels(s), 0, size);
+        stackOut.setColorModel(img.getProcessor().getColorModel());
+        imgOut.getProcessor().setColorModel(img.getProcessor().getColorModel());
+        imgOut.setDisplayRange(img.getDisplayRangeMin(), img.getDisplayRangeMax());
+        if (img.getProperty("Info") != null)
+            imgOut.setProperty("Info", img.getProperty("Info"));
+        return(imgOut);
+    }
+
+
+    /**
+     * Create an empty image with same dimensions and bit depth, from pooled plane arrays
+     */
+    public ImagePlus createSameDimensions(ImagePlus img) {
+        return(allocate(img, true));
+    }
+
+
+    /**
+     * Give all plane arrays of an image back to the pool, then flush and close it
+     * Planes not handed out by the pool are left to the garbage collector
+     * Image must not be used afterwards
+     * Return number of planes found in the image stack
+     */
+    public int recycle(ImagePlus img) {
+        ImageStack stack = img.getStack();
+        int nbPlanes = 0;
+        for (int s = 1; s <= stack.getSize(); s++) {
+            Object pixels = stack.getPixels(s);
+            if (pixels != null) {
+                releasePlane(pixels, stack.getWidth(), stack.getHeight());
+                nbPlanes++;
+            }
+        }
+        img.flush();
+        img.close();
+        return(nbPlanes);
+    }
+
+
+    /**
+     * Upload an 8-, 16- or 32-bit image into a pooled CLIJ2 buffer, plane by plane
+     * Buffer must be given back with releaseBuffer
+     */
+    public ClearCLBuffer push(ImagePlus img) {
+        ImageStack stack = img.getStack();
+        long[] dimensions = (stack.getSize() > 1) ? new long[]{stack.getWidth(), stack.getHeight(), stack.getSize()}
+                                                  : new long[]{stack.getWidth(), stack.getHeight()};
+        ClearCLBuffer buffer = acquireBuffer(dimensions, nativeType(img.getBitDepth()));
+        // Offsets and lengths are in elements, not bytes
+        long size = (long) stack.getWidth() * stack.getHeight();
+        for (int s = 1; s <= stack.getSize(); s++)
+            buffer.readFrom(wrapPlane(stack.getPixels(s)), (s-1) * size, size, true);
+        return(buffer);
+    }
+
+
+    /**
+     * Download a CLIJ2 buffer into pooled plane arrays of an image shaped like template
+     */
+    public ImagePlus pull(ClearCLBuffer buffer, ImagePlus template) {
+        ImagePlus imgOut = allocate(template, false);
+        ImageStack stackOut = imgOut.getStack();
+        long size = (long) stackOut.getWidth() * stackOut.getHeight();
+        for (int s = 1; s <= stackOut.getSize(); s++)
+            buffer.writeTo(wrapPlane(stackOut.getPixels(s)), (s-1) * size, size, true);
+        imgOut.resetDisplayRange();
+        return(imgOut);
+    }
+
+
+    /**
+     * Release all idle planes and buffers, and buffers never given back
+     */
+    public synchronized void clear() {
+        for (ArrayDeque<ClearCLBuffer> queue : buffers.values())
+            for (ClearCLBuffer buffer : queue)
+                clij2.release(buffer);
+        for (ClearCLBuffer buffer : outstandingBuffers)
+            clij2.release(buffer);
+        outstandingBuffers.clear();
+        planes.clear();
+        buffers.clear();
+        outstandingPlanes.clear();
+        idle.clear();
+        hostBytes = deviceBytes = 0;
+    }
+
+
+    /**
+     * Summarize pool hit rates and idle memory
+     */
+    public synchronized String report() {
+        return("Buffer pool: planes " + planeHits + "/" + (planeHits + planeMisses) + " hits (" + hitRate(planeHits, planeMisses) + "%), " +
+               "GPU buffers " + bufferHits + "/" + (bufferHits + bufferMisses) + " hits (" + hitRate(bufferHits, bufferMisses) + "%), " +
+               "idle " + hostBytes / (1024*1024) + " MB host / " + deviceBytes / (1024*1024) + " MB GPU");
+    }
+
+
+    private ImagePlus allocate(ImagePlus img, boolean clear) {
+        int width = img.getWidth(), height = img.getHeight();
+        ImageStack stackOut = new ImageStack(width, height);
+        for (int s = 1; s <= img.getStackSize(); s++)
+            stackOut.addSlice(img.getStack().getSliceLabel(s), acquirePlane(width, height, img.getBitDepth(), clear));
+        ImagePlus imgOut = new ImagePlus(img.getTitle(), stackOut);
+        imgOut.setDimensions(img.getNChannels(), img.getNSlices(), img.getNFrames());
+        imgOut.setCalibration(img.getCalibration());
+        return(imgOut);
+    }
+
+
+    // Drop idle planes and buffers until memory bounds are met again
+    private void trim() {
+        for (ArrayDeque<Object> queue : planes.values())
+            while (hostBytes > maxHostBytes && !queue.isEmpty()) {
+                Object pixels = queue.pop();
+                idle.remove(pixels);
+                hostBytes -= planeBytes(pixels);
+            }
+        for (ArrayDeque<ClearCLBuffer> queue : buffers.values())
+            while (deviceBytes > maxDeviceBytes && !queue.isEmpty()) {
+                ClearCLBuffer buffer = queue.pop();
+                idle.remove(buffer);
+                deviceBytes -= buffer.getSizeInBytes();
+                clij2.release(buffer);
+            }
+    }
+
+
+    private static String planeKey(int bitDepth, int width, int height) {
+        return(bitDepth + ":" + width + "x" + height);
+    }
+
+
+    private static String bufferKey(long[] dimensions, NativeTypeEnum type) {
+        return(type + ":" + Arrays.toString(dimensions));
+    }
+
+
+    private static int planeBitDepth(Object pixels) {
+        if (pixels instanceof byte[])
+            return(8);
+        if (pixels instanceof short[])
+            return(16);
+        if (pixels instanceof int[])
+            return(24);
+        if (pixels instanceof float[])
+            return(32);
+        throw new IllegalArgumentException("Unsupported plane type: " + pixels.getClass().getSimpleName());
+    }
+
+
+    private static NativeTypeEnum nativeType(int bitDepth) {
+        switch (bitDepth) {
+            case 8 :
+                return(NativeTypeEnum.UnsignedByte);
+            case 16 :
+                return(NativeTypeEnum.UnsignedShort);
+            case 32 :
+                return(NativeTypeEnum.Float);
+            default :
+                throw new IllegalArgumentException("Unsupported bit depth for GPU transfer: " + bitDepth);
+        }
+    }
+
+
+    private static Buffer wrapPlane(Object pixels) {
+        if (pixels instanceof byte[])
+            return(ByteBuffer.wrap((byte[]) pixels));
+        if (pixels instanceof short[])
+            return(ShortBuffer.wrap((short[]) pixels));
+        if (pixels instanceof float[])
+            return(FloatBuffer.wrap((float[]) pixels));
+        throw new IllegalArgumentException("Unsupported plane type for GPU transfer: " + pixels.getClass().getSimpleName());
+    }
+
+
+    private static long planeBytes(Object pixels) {
+        if (pixels instanceof byte[])
+            return(((byte[]) pixels).length);
+        if (pixels instanceof short[])
+            return(2L * ((short[]) pixels).length);
+        if (pixels instanceof int[])
+            return(4L * ((int[]) pixels).length);
+        return(4L * ((float[]) pixels).length);
+    }
+
+
+    private static void clearPlane(Object pixels) {
+        if (pixels instanceof byte[])
+            Arrays.fill((byte[]) pixels, (byte) 0);
+        else if (pixels instanceof short[])
+            Arrays.fill((short[]) pixels, (short) 0);
+        else if (pixels instanceof int[])
+            Arrays.fill((int[]) pixels, 0);
+        else
+            Arrays.fill((float[]) pixels, 0);
+    }
+
+
+    private static long hitRate(long hits, long misses) {
+        return((hits + misses == 0) ? 0 : Math.round(100.0 * hits / (hits + misses)));
+    }
+
+}
@@ -44,6 +44,12 @@ public class Tools {
     
     private final CLIJ2 clij2 = CLIJ2.getInstance();
     
+    // Planes and GPU buffers reused across images of the same shape
+    // Max idle memory kept in the pool on the host and on the GPU, 0 disables reuse
+    public int poolHostMB = (int) (IJ.maxMemory() / (4*1024*1024));
+    public int poolDeviceMB = 1024;
+    public final BufferPool pool = new BufferPool(clij2, poolHostMB*1024L*1024, poolDeviceMB*1024L*1024);
+    
     String[] chDialog = {"Protein A: ", "Protein B (optional): "};
     public Calibration cal = new Calibration();
     public double pixVol;
@@ -281,6 +287,18 @@ public class Tools {
     }
     
     
+    /**
+     * Give pooled image planes back to the pool and close image
+     * Warn if the stack lost planes before being recycled
+     */
+    public void recycleImage(ImagePlus img) {
+        int nbPlanes = img.getStackSize();
+        int nbRecycled = pool.recycle(img);
+        if (nbRecycled != nbPlanes)
+            System.out.println("WARNING: Only " + nbRecycled + "/" + nbPlanes + " planes of " + img.getTitle() + " recycled");
+    }
+    
+    
     /**
      * Load ROIs, if any provided
      */
@@ -360,22 +378,27 @@ public class Tools {
         ImagePlus imgOut = median3DSliceBySlice(imgTh, 2);
         imgOut.setCalibration(cal);
         
-        closeImage(imgMed);
+        pool.recycle(imgMed);
+        pool.recycle(imgTh);
         return(imgOut);
     }
         
     
     /**
      * 2D median filtering slice by slice using CLIJ2
+     * Input and output buffers and output planes come from the pool
      */ 
     public ImagePlus median3DSliceBySlice(ImagePlus img, double sizeXY) {
-       ClearCLBuffer imgCL = clij2.push(img); 
-       ClearCLBuffer imgCLMed = clij2.create(imgCL);
-       clij2.median3DSliceBySliceSphere(imgCL, imgCLMed, sizeXY, sizeXY);
-       ImagePlus imgMed = clij2.pull(imgCLMed);
-       clij2.release(imgCL);
-       clij2.release(imgCLMed);
-       return(imgMed);
+       ClearCLBuffer imgCL = pool.push(img);
+       ClearCLBuffer imgCLMed = null;
+       try {
+           imgCLMed = pool.acquireBuffer(imgCL.getDimensions(), imgCL.getNativeType());
+           clij2.median3DSliceBySliceSphere(imgCL, imgCLMed, sizeXY, sizeXY);
+           return(pool.pull(imgCLMed, img));
+       } finally {
+           pool.releaseBuffer(imgCL);
+           pool.releaseBuffer(imgCLMed);
+       }
     }
     
     
@@ -383,7 +406,8 @@ public class Tools {
      * Automatic thresholding using CLIJ2
      */
     public ImagePlus threshold(ImagePlus img, String thMed, boolean stackHistogram) {
-        ImagePlus imgOut = img.duplicate();
+        ImagePlus imgOut = pool.duplicate(img);
+        Object[] planes = imgOut.getStack().getImageArray().clone();
         if(stackHistogram) {
             IJ.setAutoThreshold(imgOut, thMed + " dark stack");
             IJ.run(imgOut, "Convert to Mask", "method=" + thMed + " background=Dark");
@@ -391,6 +415,11 @@ public class Tools {
             IJ.setAutoThreshold(imgOut, thMed + " dark");
             IJ.run(imgOut, "Convert to Mask", "method=" + thMed + " background=Dark calculate");
         }
+        // Give back planes replaced by the mask conversion
+        Object[] masks = imgOut.getStack().getImageArray();
+        for (int s = 0; s < imgOut.getStackSize(); s++)
+            if (planes[s] != masks[s])
+                pool.releasePlane(planes[s], imgOut.getWidth(), imgOut.getHeight());
         return(imgOut);
     }
     
@@ -419,7 +448,7 @@ public class Tools {
      * Measure volume and mean intensity of mask inside ROI
      */
     public Object3DInt getObjectInsideRoi(ImagePlus mask, Roi roi) {
-        ImagePlus maskClear = mask.duplicate();
+        ImagePlus maskClear = pool.duplicate(mask);
         maskClear.getProcessor().setColor(Color.BLACK);
         for (int s = 1; s <= mask.getNSlices(); s++) {
             maskClear.setSlice(s);
@@ -430,6 +459,7 @@ public class Tools {
         }
         
         Object3DInt obj = new Object3DInt(ImageHandler.wrap(maskClear));
+        pool.recycle(maskClear);
         return(obj);
     }
     
@@ -444,11 +474,13 @@ public class Tools {
         else
             imgColors = new ImagePlus[]{resProtA.getImagePlus(), null, null, imgProtA};
         
-        ImagePlus imgObjects = new RGBStackMerge().mergeHyperstacks(imgColors, false);
+        // Keep sources intact, their pooled planes are recycled afterwards
+        ImagePlus imgObjects = new RGBStackMerge().mergeHyperstacks(imgColors, true);
         imgObjects.setCalibration(cal);
         
         FileSaver ImgObjectsFile = new FileSaver(imgObjects);
         ImgObjectsFile.saveAsTiff(name); 
+        closeImage(imgObjects);
     }
     
 }